@@ -0,0 +1,125 @@
+package se.vgregion.exchange.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Incremental base64 decoder which writes the decoded bytes to an {@link OutputStream} as the encoded characters are
+ * fed to it, so neither the encoded nor the decoded data needs to be held in memory as a whole. Whitespace, e.g. line
+ * breaks, is ignored.
+ */
+class Base64Decoder {
+
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            VALUES[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private final OutputStream outputStream;
+    private final byte[] buffer = new byte[8192];
+    private int bufferLength;
+
+    private int quantum;
+    private int quantumLength;
+    private int paddingLength;
+    private long byteCount;
+
+    /**
+     * Constructor.
+     *
+     * @param outputStream the stream to write the decoded bytes to
+     */
+    Base64Decoder(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Decode the given characters.
+     *
+     * @param chars chars
+     * @param offset the offset of the first character to decode
+     * @param length the number of characters to decode
+     * @throws IOException if the characters aren't valid base64 or the decoded bytes can't be written
+     */
+    void decode(char[] chars, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            char c = chars[i];
+
+            if (Character.isWhitespace(c)) {
+                continue;
+            } else if (c == '=') {
+                // Padding may only complete a quantum of two or three characters.
+                if (quantumLength < 2 || paddingLength == 4 - quantumLength) {
+                    throw new IOException("Unexpected base64 padding.");
+                }
+                paddingLength++;
+                continue;
+            }
+
+            int value = c < VALUES.length ? VALUES[c] : -1;
+
+            if (value < 0 || paddingLength > 0) {
+                throw new IOException("Invalid base64 character '" + c + "'.");
+            }
+
+            quantum = (quantum << 6) | value;
+
+            if (++quantumLength == 4) {
+                write(quantum >> 16);
+                write(quantum >> 8);
+                write(quantum);
+                quantum = 0;
+                quantumLength = 0;
+            }
+        }
+    }
+
+    /**
+     * Decode what is left of the last, possibly padded, quantum and flush the decoded bytes to the output stream.
+     *
+     * @throws IOException if the input was truncated or the decoded bytes can't be written
+     */
+    void finish() throws IOException {
+        if (quantumLength == 1) {
+            throw new IOException("Truncated base64 input.");
+        } else if (paddingLength > 0 && paddingLength != 4 - quantumLength) {
+            throw new IOException("Incomplete base64 padding.");
+        } else if (quantumLength == 2) {
+            write(quantum >> 4);
+        } else if (quantumLength == 3) {
+            write(quantum >> 10);
+            write(quantum >> 2);
+        }
+
+        quantum = 0;
+        quantumLength = 0;
+        paddingLength = 0;
+
+        outputStream.write(buffer, 0, bufferLength);
+        bufferLength = 0;
+        outputStream.flush();
+    }
+
+    /**
+     * @return the number of bytes decoded so far
+     */
+    long getByteCount() {
+        return byteCount;
+    }
+
+    private void write(int b) throws IOException {
+        if (bufferLength == buffer.length) {
+            outputStream.write(buffer, 0, bufferLength);
+            bufferLength = 0;
+        }
+
+        buffer[bufferLength++] = (byte) b;
+        byteCount++;
+    }
+}
@@ -3,10 +3,12 @@ package se.vgregion.exchange.service;
 import com.microsoft.schemas.exchange.services._2006.messages.*;
 import com.microsoft.schemas.exchange.services._2006.types.*;
 import com.microsoft.schemas.exchange.services._2006.types.ObjectFactory;
+import org.apache.cxf.configuration.jsse.TLSClientParameters;
 import org.apache.cxf.endpoint.Client;
 import org.apache.cxf.frontend.ClientProxy;
 import org.apache.cxf.transport.http.HTTPConduit;
 import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
+import org.apache.cxf.transports.http.configuration.ProxyServerType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.ldap.support.LdapUtils;
@@ -14,18 +16,40 @@ import se.vgregion.ldapservice.LdapService;
 import se.vgregion.ldapservice.LdapUser;
 
 import javax.annotation.PostConstruct;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.xml.bind.JAXBElement;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.ws.BindingProvider;
 import javax.xml.ws.Holder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Authenticator;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.PasswordAuthentication;
+import java.net.Proxy;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Service class for fetching various items and information from Exchange Web Services.
@@ -36,10 +60,27 @@ public class EwsService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(EwsService.class);
 
+    private static final String SOAP_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String MESSAGES_NS = "http://schemas.microsoft.com/exchange/services/2006/messages";
+    private static final String TYPES_NS = "http://schemas.microsoft.com/exchange/services/2006/types";
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    static {
+        // The attachment content must be read in chunks rather than as one string.
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
     private final ObjectFactory objectFactory = new ObjectFactory();
     private ExchangeServicePortType exchangeServicePort;
     private final LdapService ldapService;
 
+    // Used when streaming attachments over https, see getSslSocketFactory
+    private TLSClientParameters sslSocketFactoryParameters;
+    private SSLSocketFactory sslSocketFactory;
+
     @org.springframework.beans.factory.annotation.Value("${ews.user}")
     private String ewsUser;
 
@@ -285,6 +326,356 @@ public class EwsService {
         return inbox.getUnreadCount();
     }
 
+    /**
+     * Resolve an ambiguous name, e.g. the beginning of a display name or an email address, against the Active
+     * Directory and the user's own contacts.
+     *
+     * @param userId the user id to impersonate
+     * @param unresolvedEntry the text to resolve
+     * @return the mailboxes matching the given text, an empty list if nothing matched or <code>null</code> if the
+     * user could not be found
+     */
+    public List<EmailAddressType> resolveNames(String userId, String unresolvedEntry) {
+        ResolveNamesType resolveNames = new ResolveNamesType();
+        resolveNames.setUnresolvedEntry(unresolvedEntry);
+        resolveNames.setReturnFullContactData(false);
+        resolveNames.setSearchScope(ResolveNamesSearchScopeType.ACTIVE_DIRECTORY_CONTACTS);
+
+        ExchangeImpersonationType impersonation = getExchangeImpersonation(userId);
+
+        if (impersonation == null) {
+            return null;
+        }
+
+        Holder<ResolveNamesResponseType> resolveNamesResult = new Holder<ResolveNamesResponseType>();
+
+        exchangeServicePort.resolveNames(resolveNames, impersonation, null, null, resolveNamesResult, null);
+
+        ArrayOfResponseMessagesType responseMessagesType = resolveNamesResult.value.getResponseMessages();
+
+        List<JAXBElement<? extends ResponseMessageType>> responseMessages = responseMessagesType
+                .getCreateItemResponseMessageOrDeleteItemResponseMessageOrGetItemResponseMessage();
+
+        List<EmailAddressType> mailboxes = new ArrayList<EmailAddressType>();
+
+        for (JAXBElement<? extends ResponseMessageType> responseMessage : responseMessages) {
+            // No matches is reported as an error response without a resolution set.
+            if (!(responseMessage.getValue() instanceof ResolveNamesResponseMessageType)) {
+                continue;
+            }
+
+            ArrayOfResolutionType resolutionSet = ((ResolveNamesResponseMessageType) responseMessage.getValue())
+                    .getResolutionSet();
+
+            if (resolutionSet == null) {
+                continue;
+            }
+
+            for (ResolutionType resolution : resolutionSet.getResolution()) {
+                mailboxes.add(resolution.getMailbox());
+            }
+        }
+
+        return mailboxes;
+    }
+
+    /**
+     * Stream the content of a file attachment to an output stream. Unlike the GetAttachment operation of the
+     * generated port, which holds the whole attachment in memory, the base64 encoded content is decoded and written
+     * while the SOAP response is read.
+     *
+     * @param userId the user id
+     * @param attachmentId the id of the file attachment
+     * @param outputStream the stream to write the attachment content to, it is flushed but not closed
+     * @return the number of bytes written or <code>null</code> if the user could not be found
+     * @throws IOException if the attachment could not be fetched or written, in which case the output stream may
+     * already have received part of the attachment
+     */
+    public Long streamAttachment(String userId, String attachmentId, OutputStream outputStream) throws IOException {
+        String userSid = fetchUserSid(userId);
+
+        if (userSid == null) {
+            return null;
+        }
+
+        HttpURLConnection connection = openConnection();
+        boolean success = false;
+
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "text/xml; charset=utf-8");
+            connection.setRequestProperty("SOAPAction", "\"" + MESSAGES_NS + "/GetAttachment\"");
+
+            // The request is small so we let it be buffered. That way it can be resent when authentication is needed.
+            OutputStream requestStream = connection.getOutputStream();
+            try {
+                writeGetAttachmentRequest(requestStream, userSid, attachmentId);
+            } finally {
+                requestStream.close();
+            }
+
+            int status = connection.getResponseCode();
+            String contentType = connection.getContentType();
+
+            InputStream responseStream;
+            if (status >= HttpURLConnection.HTTP_OK && status < HttpURLConnection.HTTP_MULT_CHOICE) {
+                responseStream = connection.getInputStream();
+            } else if (status == HttpURLConnection.HTTP_INTERNAL_ERROR && contentType != null
+                    && contentType.contains("xml")) {
+                // A SOAP fault
+                responseStream = connection.getErrorStream();
+            } else {
+                InputStream errorStream = connection.getErrorStream();
+                if (errorStream != null) {
+                    errorStream.close();
+                }
+                responseStream = null;
+            }
+
+            if (responseStream == null) {
+                throw new IOException("GetAttachment failed with HTTP status " + status + ".");
+            }
+
+            try {
+                long byteCount = readAttachmentContent(responseStream, outputStream);
+                success = true;
+                return byteCount;
+            } finally {
+                responseStream.close();
+            }
+        } finally {
+            // Only a connection with a fully read response may be kept alive.
+            if (!success) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Stream the content of a file attachment to a channel.
+     *
+     * @param userId the user id
+     * @param attachmentId the id of the file attachment
+     * @param channel the channel to write the attachment content to, it is not closed
+     * @return the number of bytes written or <code>null</code> if the user could not be found
+     * @throws IOException if the attachment could not be fetched or written, in which case the channel may already
+     * have received part of the attachment
+     * @see #streamAttachment(String, String, java.io.OutputStream)
+     */
+    public Long streamAttachment(String userId, String attachmentId, WritableByteChannel channel)
+            throws IOException {
+        return streamAttachment(userId, attachmentId, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Open a connection to the Exchange web service with the same timeouts, proxy and TLS settings as the conduit of
+     * the generated port.
+     */
+    private HttpURLConnection openConnection() throws IOException {
+        HTTPConduit conduit = (HTTPConduit) ClientProxy.getClient(exchangeServicePort).getConduit();
+        HTTPClientPolicy policy = conduit.getClient();
+
+        URL url = new URL(getEndpointAddress());
+
+        HttpURLConnection connection;
+        if (policy.getProxyServer() != null && !isNonProxyHost(policy.getNonProxyHosts(), url.getHost())) {
+            Proxy.Type proxyType = policy.getProxyServerType() == ProxyServerType.SOCKS
+                    ? Proxy.Type.SOCKS : Proxy.Type.HTTP;
+            connection = (HttpURLConnection) url.openConnection(new Proxy(proxyType,
+                    new InetSocketAddress(policy.getProxyServer(), policy.getProxyServerPort())));
+        } else {
+            connection = (HttpURLConnection) url.openConnection();
+        }
+
+        connection.setConnectTimeout((int) Math.min(policy.getConnectionTimeout(), Integer.MAX_VALUE));
+        connection.setReadTimeout((int) Math.min(policy.getReceiveTimeout(), Integer.MAX_VALUE));
+        connection.setInstanceFollowRedirects(policy.isAutoRedirect());
+
+        TLSClientParameters tlsClientParameters = conduit.getTlsClientParameters();
+        if (connection instanceof HttpsURLConnection && tlsClientParameters != null) {
+            HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+
+            if (!tlsClientParameters.isUseHttpsURLConnectionDefaultSslSocketFactory()) {
+                httpsConnection.setSSLSocketFactory(getSslSocketFactory(tlsClientParameters));
+            }
+
+            if (tlsClientParameters.isDisableCNCheck()) {
+                httpsConnection.setHostnameVerifier(new HostnameVerifier() {
+                    @Override
+                    public boolean verify(String hostname, SSLSession session) {
+                        return true;
+                    }
+                });
+            }
+        }
+
+        return connection;
+    }
+
+    /**
+     * The socket factory is created from the key and trust managers of the conduit the same way as the conduit itself
+     * does it. It is cached so TLS sessions can be reused between downloads.
+     */
+    private synchronized SSLSocketFactory getSslSocketFactory(TLSClientParameters tlsClientParameters)
+            throws IOException {
+        if (tlsClientParameters.getSSLSocketFactory() != null) {
+            return tlsClientParameters.getSSLSocketFactory();
+        }
+
+        if (tlsClientParameters != sslSocketFactoryParameters) {
+            String protocol = tlsClientParameters.getSecureSocketProtocol() != null
+                    ? tlsClientParameters.getSecureSocketProtocol() : "TLS";
+
+            try {
+                SSLContext sslContext = tlsClientParameters.getJsseProvider() != null
+                        ? SSLContext.getInstance(protocol, tlsClientParameters.getJsseProvider())
+                        : SSLContext.getInstance(protocol);
+                sslContext.init(tlsClientParameters.getKeyManagers(), tlsClientParameters.getTrustManagers(),
+                        tlsClientParameters.getSecureRandom());
+
+                sslSocketFactory = sslContext.getSocketFactory();
+                sslSocketFactoryParameters = tlsClientParameters;
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        return sslSocketFactory;
+    }
+
+    private static boolean isNonProxyHost(String nonProxyHosts, String host) {
+        if (nonProxyHosts == null) {
+            return false;
+        }
+
+        // The patterns are separated by '|' and may contain '*' wildcards, just as the http.nonProxyHosts property.
+        for (String pattern : nonProxyHosts.split("\\|")) {
+            String regex = "\\Q" + pattern.trim().replace("*", "\\E.*\\Q") + "\\E";
+
+            if (Pattern.compile(regex, Pattern.CASE_INSENSITIVE).matcher(host).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private String getEndpointAddress() {
+        Object address = ((BindingProvider) exchangeServicePort).getRequestContext()
+                .get(BindingProvider.ENDPOINT_ADDRESS_PROPERTY);
+
+        if (address != null) {
+            return address.toString();
+        }
+
+        return ClientProxy.getClient(exchangeServicePort).getEndpoint().getEndpointInfo().getAddress();
+    }
+
+    private void writeGetAttachmentRequest(OutputStream outputStream, String userSid, String attachmentId)
+            throws IOException {
+        try {
+            XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(outputStream, "utf-8");
+
+            writer.writeStartDocument("utf-8", "1.0");
+            writer.setPrefix("soap", SOAP_NS);
+            writer.setPrefix("m", MESSAGES_NS);
+            writer.setPrefix("t", TYPES_NS);
+
+            writer.writeStartElement("soap", "Envelope", SOAP_NS);
+            writer.writeNamespace("soap", SOAP_NS);
+            writer.writeNamespace("m", MESSAGES_NS);
+            writer.writeNamespace("t", TYPES_NS);
+
+            writer.writeStartElement(SOAP_NS, "Header");
+            writer.writeStartElement(TYPES_NS, "ExchangeImpersonation");
+            writer.writeStartElement(TYPES_NS, "ConnectingSID");
+            writer.writeStartElement(TYPES_NS, "SID");
+            writer.writeCharacters(userSid);
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndElement();
+
+            writer.writeStartElement(SOAP_NS, "Body");
+            writer.writeStartElement(MESSAGES_NS, "GetAttachment");
+            writer.writeStartElement(MESSAGES_NS, "AttachmentIds");
+            writer.writeEmptyElement(TYPES_NS, "AttachmentId");
+            writer.writeAttribute("Id", attachmentId);
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndElement();
+
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private long readAttachmentContent(InputStream responseStream, OutputStream outputStream) throws IOException {
+        try {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(responseStream);
+
+            try {
+                String messageText = null;
+
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+
+                    if ("Content".equals(reader.getLocalName()) && TYPES_NS.equals(reader.getNamespaceURI())) {
+                        return decodeContent(reader, new Base64Decoder(outputStream));
+                    } else if ("MessageText".equals(reader.getLocalName())
+                            || "faultstring".equals(reader.getLocalName())) {
+                        messageText = reader.getElementText();
+                    }
+                }
+
+                throw new IOException("GetAttachment returned no file attachment content"
+                        + (messageText != null ? ": " + messageText : "."));
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Decode the text of the current element, which the reader is positioned at the start of, in bounded chunks.
+     *
+     * @param reader the reader
+     * @param decoder the decoder to feed the text to
+     * @return the number of bytes decoded
+     */
+    static long decodeContent(XMLStreamReader reader, Base64Decoder decoder) throws XMLStreamException, IOException {
+        char[] buffer = new char[8192];
+
+        int event;
+        while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+            if (event != XMLStreamConstants.CHARACTERS && event != XMLStreamConstants.CDATA
+                    && event != XMLStreamConstants.SPACE) {
+                continue;
+            }
+
+            // Copy the text in chunks to avoid creating a string of the whole text event.
+            int start = 0;
+            int length;
+            do {
+                length = reader.getTextCharacters(start, buffer, 0, buffer.length);
+                decoder.decode(buffer, 0, length);
+                start += length;
+            } while (length == buffer.length);
+        }
+
+        decoder.finish();
+
+        return decoder.getByteCount();
+    }
+
     private FolderType findInboxFolder(String userId) {
         Holder<FindFolderResponseType> findFolderResult = new Holder<FindFolderResponseType>();
 
@@ -0,0 +1,452 @@
+package se.vgregion.exchange.service;
+
+import com.microsoft.schemas.exchange.services._2006.types.EmailAddressType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.core.ContextExecutor;
+import org.springframework.ldap.core.LdapOperations;
+
+import javax.annotation.PostConstruct;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Service for looking up people by prefix, e.g. for recipient autocomplete. The lookups are answered from an
+ * in-memory prefix index of display names, emails and cn values which is built from the directory. Only when the
+ * index has no match is Exchange asked via {@link EwsService#resolveNames(String, String)}.
+ *
+ * <p>Disabled accounts and mailboxes hidden from the address lists are left out, just as Exchange leaves them out of
+ * the address book.</p>
+ *
+ * <p>People are identified by their objectGUID, so {@link #refreshIndex()} handles renamed people and people who
+ * have lost their email address or been disabled or hidden. People deleted from the directory are not returned by
+ * the incremental search though, so they stay in the index until the next {@link #rebuildIndex()}.</p>
+ */
+public class PeopleSearchService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeopleSearchService.class);
+
+    // objectClass=person alone matches computer accounts too.
+    private static final String USERS_FILTER = "(objectCategory=person)(objectClass=user)";
+
+    private static final String PEOPLE_FILTER = "(&" + USERS_FILTER + "(mail=*)"
+            + "(!(msExchHideFromAddressLists=TRUE))(!(userAccountControl:1.2.840.113556.1.4.803:=2)))";
+
+    // Without the other conditions so that people who no longer fulfil them are found and removed.
+    private static final String CHANGED_PEOPLE_FILTER = "(&" + USERS_FILTER + "(whenChanged>=%s))";
+
+    private static final String[] ATTRIBUTES = {"objectGUID", "cn", "displayName", "mail",
+        "msExchHideFromAddressLists", "userAccountControl"};
+
+    private static final int ACCOUNT_DISABLED = 2;
+
+    // Active Directory returns at most 1000 entries per page by default.
+    private static final int PAGE_SIZE = 500;
+
+    // Resolving very short prefixes against Exchange is expensive and rarely useful.
+    private static final int MIN_FALLBACK_PREFIX_LENGTH = 3;
+
+    // Changes may be replicated to the queried domain controller somewhat after they were made.
+    private static final long REFRESH_OVERLAP_MILLIS = 10 * 60 * 1000;
+
+    private final LdapOperations ldapOperations;
+    private final EwsService ewsService;
+
+    // Only accessed when holding the lock of this instance.
+    private final Map<String, Person> people = new HashMap<String, Person>();
+    private Date lastRefresh;
+
+    // The last prefix per user which Exchange couldn't resolve. Longer prefixes won't be resolved either.
+    private final Map<String, String> lastUnresolvedPrefixes = new ConcurrentHashMap<String, String>();
+
+    private volatile PrefixIndex index = new PrefixIndex(new ArrayList<Person>());
+
+    /**
+     * Constructor.
+     *
+     * @param ldapOperations ldapOperations
+     * @param ewsService ewsService
+     */
+    public PeopleSearchService(LdapOperations ldapOperations, EwsService ewsService) {
+        this.ldapOperations = ldapOperations;
+        this.ewsService = ewsService;
+    }
+
+    /**
+     * Builds the initial index. If the directory can't be reached searches will only use Exchange until the index
+     * is refreshed.
+     */
+    @PostConstruct
+    public void init() {
+        try {
+            rebuildIndex();
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to build the people index.", e);
+        }
+    }
+
+    /**
+     * Replaces the index with one built from all people in the directory.
+     */
+    public synchronized void rebuildIndex() {
+        Date refreshStart = new Date();
+
+        Map<String, Person> found = searchPeople(PEOPLE_FILTER);
+
+        people.clear();
+
+        for (Map.Entry<String, Person> entry : found.entrySet()) {
+            if (entry.getValue() != null) {
+                people.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        index = new PrefixIndex(people.values());
+        lastRefresh = refreshStart;
+
+        LOGGER.info("Built people index with " + people.size() + " people.");
+    }
+
+    /**
+     * Updates the index with the people changed in the directory since the last refresh.
+     */
+    public synchronized void refreshIndex() {
+        if (lastRefresh == null) {
+            rebuildIndex();
+            return;
+        }
+
+        Date refreshStart = new Date();
+
+        Map<String, Person> changed = searchPeople(String.format(CHANGED_PEOPLE_FILTER,
+                toGeneralizedTime(new Date(lastRefresh.getTime() - REFRESH_OVERLAP_MILLIS))));
+
+        // Logons and password changes also update whenChanged, so most of the changed entries are likely unchanged
+        // as far as the index is concerned.
+        int modifications = 0;
+
+        for (Map.Entry<String, Person> entry : changed.entrySet()) {
+            Person previous;
+            if (entry.getValue() != null) {
+                previous = people.put(entry.getKey(), entry.getValue());
+            } else {
+                previous = people.remove(entry.getKey());
+            }
+
+            if (previous == null ? entry.getValue() != null : !previous.equals(entry.getValue())) {
+                modifications++;
+            }
+        }
+
+        if (modifications > 0) {
+            index = new PrefixIndex(people.values());
+        }
+
+        lastRefresh = refreshStart;
+
+        LOGGER.debug("Refreshed people index with " + modifications + " modifications among " + changed.size()
+                + " changed entries.");
+    }
+
+    /**
+     * Find people whose display name, any word in the display name, email or cn starts with the given prefix. The
+     * match is case insensitive. If no one in the index matches the prefix is resolved by Exchange instead.
+     *
+     * @param userId the user id to impersonate if Exchange needs to be asked
+     * @param prefix the prefix, typically what the user has typed so far
+     * @param maxResults the maximum number of people to return
+     * @return the matching people
+     */
+    public List<Person> search(String userId, String prefix, int maxResults) {
+        if (prefix == null || prefix.trim().length() == 0 || maxResults <= 0) {
+            return new ArrayList<Person>();
+        }
+
+        List<Person> result = index.lookup(normalize(prefix.trim()), maxResults);
+
+        if (result.isEmpty() && prefix.trim().length() >= MIN_FALLBACK_PREFIX_LENGTH && userId != null) {
+            result = resolveWithExchange(userId, prefix.trim(), maxResults);
+        }
+
+        return result;
+    }
+
+    private List<Person> resolveWithExchange(String userId, String prefix, int maxResults) {
+        List<Person> result = new ArrayList<Person>();
+
+        String normalizedPrefix = normalize(prefix);
+        String lastUnresolvedPrefix = lastUnresolvedPrefixes.get(userId);
+
+        if (lastUnresolvedPrefix != null && normalizedPrefix.startsWith(lastUnresolvedPrefix)) {
+            return result;
+        }
+
+        List<EmailAddressType> mailboxes;
+        try {
+            mailboxes = ewsService.resolveNames(userId, prefix);
+        } catch (RuntimeException e) {
+            // An autocomplete shouldn't fail just because Exchange couldn't be asked.
+            LOGGER.warn("Failed to resolve names with Exchange: " + e.getMessage(), e);
+            return result;
+        }
+
+        if (mailboxes == null || mailboxes.isEmpty()) {
+            lastUnresolvedPrefixes.put(userId, normalizedPrefix);
+            return result;
+        }
+
+        lastUnresolvedPrefixes.remove(userId);
+
+        for (EmailAddressType mailbox : mailboxes) {
+            if (result.size() >= maxResults) {
+                break;
+            }
+
+            result.add(new Person(null, mailbox.getName(), mailbox.getEmailAddress()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Search the directory page by page. All pages must be fetched on the same connection so the search is made
+     * within a single read-only context.
+     *
+     * @param filter the ldap filter
+     * @return the people found, keyed by objectGUID, with <code>null</code> values for those which shouldn't be
+     * suggested
+     */
+    private Map<String, Person> searchPeople(final String filter) {
+        final SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchControls.setReturningAttributes(ATTRIBUTES);
+
+        final Map<String, Person> found = new LinkedHashMap<String, Person>();
+
+        ldapOperations.executeReadOnly(new ContextExecutor() {
+            @Override
+            public Object executeWithContext(DirContext ctx) throws NamingException {
+                LdapContext ldapContext = (LdapContext) ctx;
+
+                byte[] cookie = null;
+                do {
+                    ldapContext.setRequestControls(new Control[]{createPagedResultsControl(cookie)});
+
+                    NamingEnumeration<SearchResult> results = ldapContext.search("", filter, searchControls);
+                    try {
+                        while (results.hasMore()) {
+                            addSearchResult(found, results.next());
+                        }
+                    } finally {
+                        results.close();
+                    }
+
+                    cookie = getPagedResultsCookie(ldapContext.getResponseControls());
+                } while (cookie != null && cookie.length > 0);
+
+                ldapContext.setRequestControls(null);
+
+                return null;
+            }
+        });
+
+        return found;
+    }
+
+    private static PagedResultsControl createPagedResultsControl(byte[] cookie) {
+        try {
+            return new PagedResultsControl(PAGE_SIZE, cookie, Control.CRITICAL);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] getPagedResultsCookie(Control[] responseControls) {
+        if (responseControls == null) {
+            return null;
+        }
+
+        for (Control control : responseControls) {
+            if (control instanceof PagedResultsResponseControl) {
+                return ((PagedResultsResponseControl) control).getCookie();
+            }
+        }
+
+        return null;
+    }
+
+    private static void addSearchResult(Map<String, Person> found, SearchResult searchResult)
+            throws NamingException {
+        Attributes attributes = searchResult.getAttributes();
+
+        Object objectGuid = getAttributeValue(attributes, "objectGUID");
+        String key = objectGuid instanceof byte[]
+                ? new BigInteger(1, (byte[]) objectGuid).toString(16) : searchResult.getNameInNamespace();
+
+        Object cn = getAttributeValue(attributes, "cn");
+        Object mail = getAttributeValue(attributes, "mail");
+        Object hidden = getAttributeValue(attributes, "msExchHideFromAddressLists");
+        Object userAccountControl = getAttributeValue(attributes, "userAccountControl");
+
+        boolean disabled = userAccountControl != null
+                && (Integer.parseInt(userAccountControl.toString()) & ACCOUNT_DISABLED) != 0;
+
+        if (cn == null || mail == null || "TRUE".equalsIgnoreCase(String.valueOf(hidden)) || disabled) {
+            found.put(key, null);
+            return;
+        }
+
+        Object displayName = getAttributeValue(attributes, "displayName");
+
+        found.put(key, new Person(cn.toString(), displayName != null ? displayName.toString() : null,
+                mail.toString()));
+    }
+
+    private static Object getAttributeValue(Attributes attributes, String attributeName) throws NamingException {
+        Attribute attribute = attributes.get(attributeName);
+
+        return attribute != null ? attribute.get() : null;
+    }
+
+    private static String toGeneralizedTime(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'.0Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    static String normalize(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Immutable prefix index. All keys are kept in one sorted array so a lookup is a binary search followed by a
+     * scan over the keys sharing the prefix.
+     */
+    static class PrefixIndex {
+
+        private final String[] keys;
+        private final int[] personIndices;
+        private final Person[] persons;
+
+        PrefixIndex(Collection<Person> people) {
+            persons = people.toArray(new Person[people.size()]);
+
+            List<IndexEntry> entries = new ArrayList<IndexEntry>();
+
+            for (int i = 0; i < persons.length; i++) {
+                Set<String> personKeys = new LinkedHashSet<String>();
+
+                addKey(personKeys, persons[i].getCn());
+                addKey(personKeys, persons[i].getEmail());
+
+                String displayName = persons[i].getDisplayName();
+                addKey(personKeys, displayName);
+
+                if (displayName != null) {
+                    for (String word : displayName.split("[\\s,]+")) {
+                        addKey(personKeys, word);
+                    }
+                }
+
+                for (String key : personKeys) {
+                    entries.add(new IndexEntry(key, i));
+                }
+            }
+
+            IndexEntry[] sorted = entries.toArray(new IndexEntry[entries.size()]);
+            Arrays.sort(sorted);
+
+            keys = new String[sorted.length];
+            personIndices = new int[sorted.length];
+
+            for (int i = 0; i < sorted.length; i++) {
+                keys[i] = sorted[i].key;
+                personIndices[i] = sorted[i].personIndex;
+            }
+        }
+
+        private static void addKey(Set<String> personKeys, String value) {
+            if (value != null && value.length() > 0) {
+                personKeys.add(normalize(value));
+            }
+        }
+
+        List<Person> lookup(String normalizedPrefix, int maxResults) {
+            Set<Integer> found = new LinkedHashSet<Integer>();
+
+            for (int i = lowerBound(normalizedPrefix); i < keys.length && found.size() < maxResults; i++) {
+                if (!keys[i].startsWith(normalizedPrefix)) {
+                    break;
+                }
+
+                found.add(personIndices[i]);
+            }
+
+            List<Person> result = new ArrayList<Person>(found.size());
+
+            for (Integer personIndex : found) {
+                result.add(persons[personIndex]);
+            }
+
+            return result;
+        }
+
+        private int lowerBound(String key) {
+            int low = 0;
+            int high = keys.length;
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+
+                if (keys[mid].compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+    }
+
+    private static class IndexEntry implements Comparable<IndexEntry> {
+
+        private final String key;
+        private final int personIndex;
+
+        IndexEntry(String key, int personIndex) {
+            this.key = key;
+            this.personIndex = personIndex;
+        }
+
+        @Override
+        public int compareTo(IndexEntry o) {
+            return key.compareTo(o.key);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package se.vgregion.exchange.service;
+
+import java.util.Arrays;
+
+/**
+ * A person which can be suggested as a recipient, e.g. when composing an email or inviting to a meeting.
+ */
+public class Person {
+
+    private final String cn;
+    private final String displayName;
+    private final String email;
+
+    /**
+     * Constructor.
+     *
+     * @param cn the cn, i.e. the user id, may be <code>null</code> if the person isn't found in the directory
+     * @param displayName displayName
+     * @param email email
+     */
+    public Person(String cn, String displayName, String email) {
+        this.cn = cn;
+        this.displayName = displayName;
+        this.email = email;
+    }
+
+    public String getCn() {
+        return cn;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Person)) {
+            return false;
+        }
+
+        Person person = (Person) o;
+
+        return equal(cn, person.cn) && equal(displayName, person.displayName) && equal(email, person.email);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[]{cn, displayName, email});
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return displayName + " <" + email + ">";
+    }
+}
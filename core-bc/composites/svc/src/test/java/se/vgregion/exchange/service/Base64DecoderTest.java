@@ -0,0 +1,111 @@
+package se.vgregion.exchange.service;
+
+import org.apache.geronimo.mail.util.Base64;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Base64DecoderTest {
+
+    private static String decode(String... chunks) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Base64Decoder decoder = new Base64Decoder(outputStream);
+
+        for (String chunk : chunks) {
+            decoder.decode(chunk.toCharArray(), 0, chunk.length());
+        }
+
+        decoder.finish();
+
+        assertEquals(outputStream.size(), decoder.getByteCount());
+
+        return outputStream.toString("UTF-8");
+    }
+
+    private static void assertInvalid(String... chunks) {
+        try {
+            decode(chunks);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        assertEquals("Hello world", decode("SGVsbG8gd29ybGQ="));
+        assertEquals("", decode(""));
+    }
+
+    @Test
+    public void testDecodeChunksSplittingQuanta() throws Exception {
+        assertEquals("Hello world", decode("S", "GVsb", "G8gd2", "9yb", "GQ="));
+        assertEquals("Hello world", decode("SGVsbG8gd29ybGQ", "="));
+
+        String encoded = "SGVsbG8gd29ybGQ=";
+        String[] chars = new String[encoded.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = encoded.substring(i, i + 1);
+        }
+        assertEquals("Hello world", decode(chars));
+    }
+
+    @Test
+    public void testDecodePadding() throws Exception {
+        assertEquals("A", decode("QQ=="));
+        assertEquals("AB", decode("QUI="));
+        assertEquals("ABC", decode("QUJD"));
+    }
+
+    @Test
+    public void testDecodeWithLineBreaks() throws Exception {
+        assertEquals("Hello world", decode("SGVs\r\nbG8g\r\n", "d29y\r", "\nbGQ=\r\n"));
+    }
+
+    @Test
+    public void testDecodeMoreThanBuffer() throws Exception {
+        byte[] bytes = new byte[20000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+
+        char[] encoded = new String(Base64.encode(bytes), "US-ASCII").toCharArray();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Base64Decoder decoder = new Base64Decoder(outputStream);
+        decoder.decode(encoded, 0, encoded.length);
+        decoder.finish();
+
+        assertEquals(20000, decoder.getByteCount());
+        assertArrayEquals(bytes, outputStream.toByteArray());
+    }
+
+    @Test
+    public void testDecodeInvalidCharacter() throws Exception {
+        assertInvalid("SGV$bG8=");
+        assertInvalid("SGVs\u00e5G8=");
+    }
+
+    @Test
+    public void testDecodeDataAfterPadding() throws Exception {
+        assertInvalid("QQ==QQ==");
+        assertInvalid("QUJD=");
+        assertInvalid("QQ===");
+        assertInvalid("Q===");
+    }
+
+    @Test
+    public void testDecodeIncompletePadding() throws Exception {
+        assertInvalid("QQ=");
+    }
+
+    @Test
+    public void testDecodeTruncated() throws Exception {
+        assertInvalid("SGVsb");
+    }
+}
@@ -22,15 +22,25 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.namespace.QName;
 import javax.xml.soap.*;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
 import java.io.*;
 import java.net.URL;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
@@ -43,6 +53,8 @@ public class EwsServiceTest {
 
     private static int port = 8084;
 
+    private static final int LARGE_ATTACHMENT_SIZE = 8 * 1024 * 1024;
+
     private EwsService ewsService;
     private ExchangeServicePortType exchangeServicePort;
     private LdapService ldapService;
@@ -87,6 +99,27 @@ public class EwsServiceTest {
                                 replyWithSoapDocument(response, "soap-documents/FindFolder-response");
                                 return;
 
+                            } else if (soapAction.contains(
+                                    "http://schemas.microsoft.com/exchange/services/2006/messages/GetAttachment")) {
+
+                                String soapRequest = streamToString(request.getInputStream());
+
+                                if (soapRequest.contains("Id=\"large\"")) {
+                                    replyWithLargeAttachment(response);
+                                } else if (soapRequest.contains("Id=\"missing\"")) {
+                                    replyWithSoapDocument(response, "soap-documents/GetAttachment-error-response");
+                                } else if (soapRequest.contains("Id=\"denied\"")) {
+                                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                                    response.setContentType("text/xml; charset=utf-8");
+                                    replyWithSoapDocument(response, "soap-documents/SoapFault-response");
+                                } else if (soapRequest.contains("Id=\"forbidden\"")) {
+                                    response.sendError(HttpServletResponse.SC_FORBIDDEN);
+                                } else {
+                                    replyWithSoapDocument(response, "soap-documents/GetAttachment-response");
+                                }
+
+                                return;
+
                             } else if (soapAction.contains(
                                     "http://schemas.microsoft.com/exchange/services/2006/messages/FindItem")) {
 
@@ -155,6 +188,38 @@ public class EwsServiceTest {
         printToResponse(httpServletResponse, soapReply);
     }
 
+    private static void replyWithLargeAttachment(HttpServletResponse httpServletResponse) throws IOException {
+        httpServletResponse.setContentType("text/xml; charset=utf-8");
+
+        OutputStream outputStream = new BufferedOutputStream(httpServletResponse.getOutputStream());
+
+        outputStream.write(("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+                + "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>"
+                + "<m:GetAttachmentResponse xmlns:m=\"http://schemas.microsoft.com/exchange/services/2006/messages\""
+                + " xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\"><m:ResponseMessages>"
+                + "<m:GetAttachmentResponseMessage ResponseClass=\"Success\"><m:ResponseCode>NoError</m:ResponseCode>"
+                + "<m:Attachments><t:FileAttachment><t:Name>large.bin</t:Name><t:Content>").getBytes("UTF-8"));
+
+        // Encode 57 bytes, i.e. one 76 character line, at a time so the content is never held in memory.
+        for (int offset = 0; offset < LARGE_ATTACHMENT_SIZE; offset += 57) {
+            byte[] line = new byte[Math.min(57, LARGE_ATTACHMENT_SIZE - offset)];
+            for (int i = 0; i < line.length; i++) {
+                line[i] = largeAttachmentByte(offset + i);
+            }
+
+            outputStream.write(Base64.encode(line));
+            outputStream.write('\n');
+        }
+
+        outputStream.write(("</t:Content></t:FileAttachment></m:Attachments></m:GetAttachmentResponseMessage>"
+                + "</m:ResponseMessages></m:GetAttachmentResponse></s:Body></s:Envelope>").getBytes("UTF-8"));
+        outputStream.close();
+    }
+
+    private static byte largeAttachmentByte(int index) {
+        return (byte) (index * 31 + index / 1024);
+    }
+
     @Before
     public void setup() throws IOException {
         ldapService = mock(LdapService.class);
@@ -232,6 +297,135 @@ public class EwsServiceTest {
         assertEquals((Integer) 17, unreadCount); // The FindFolder-response file says 17
     }
 
+    @Test
+    public void testStreamAttachment() throws Exception {
+        ewsService.init();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        Long byteCount = ewsService.streamAttachment("asdf", "AAMkAGE2ZjAtYXR0YWNobWVudA==", outputStream);
+
+        // The GetAttachment-response file contains the bytes (i * 31) % 256 for i = 0..9999.
+        byte[] expected = new byte[10000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) (i * 31);
+        }
+
+        assertEquals((Long) 10000L, byteCount);
+        assertArrayEquals(expected, outputStream.toByteArray());
+    }
+
+    @Test
+    public void testStreamLargeAttachment() throws Exception {
+        ewsService.init();
+
+        CRC32 expectedChecksum = new CRC32();
+        for (int i = 0; i < LARGE_ATTACHMENT_SIZE; i++) {
+            expectedChecksum.update(largeAttachmentByte(i));
+        }
+
+        // Only checksum what is written so the test itself doesn't hold the attachment in memory.
+        CheckedOutputStream outputStream = new CheckedOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, new CRC32());
+
+        Long byteCount = ewsService.streamAttachment("asdf", "large", Channels.newChannel(outputStream));
+
+        assertEquals((Long) (long) LARGE_ATTACHMENT_SIZE, byteCount);
+        assertEquals(expectedChecksum.getValue(), outputStream.getChecksum().getValue());
+    }
+
+    @Test
+    public void testDecodeContentInBoundedChunks() throws Exception {
+        byte[] bytes = new byte[1024 * 1024];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = largeAttachmentByte(i);
+        }
+
+        String xml = "<t:Content xmlns:t=\"http://schemas.microsoft.com/exchange/services/2006/types\">"
+                + new String(Base64.encode(bytes), "US-ASCII") + "</t:Content>";
+
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+
+        final int[] characterEvents = new int[1];
+        XMLStreamReader reader = new StreamReaderDelegate(inputFactory.createXMLStreamReader(new StringReader(xml))) {
+            @Override
+            public int next() throws XMLStreamException {
+                int event = super.next();
+                if (event == XMLStreamConstants.CHARACTERS) {
+                    characterEvents[0]++;
+                }
+                return event;
+            }
+        };
+        reader.nextTag();
+
+        final int[] decodeCalls = new int[1];
+        final int[] maxChunkLength = new int[1];
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Base64Decoder decoder = new Base64Decoder(outputStream) {
+            @Override
+            void decode(char[] chars, int offset, int length) throws IOException {
+                decodeCalls[0]++;
+                maxChunkLength[0] = Math.max(maxChunkLength[0], length);
+                super.decode(chars, offset, length);
+            }
+        };
+
+        long byteCount = EwsService.decodeContent(reader, decoder);
+
+        assertEquals(bytes.length, byteCount);
+        assertArrayEquals(bytes, outputStream.toByteArray());
+
+        // The text must be consumed piece by piece rather than as one string.
+        assertTrue(characterEvents[0] > 1);
+        assertTrue(decodeCalls[0] > 1);
+        assertTrue(maxChunkLength[0] <= 8192);
+    }
+
+    @Test
+    public void testStreamAttachmentErrorResponse() throws Exception {
+        ewsService.init();
+
+        try {
+            ewsService.streamAttachment("asdf", "missing", new ByteArrayOutputStream());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("The specified object was not found in the store."));
+        }
+    }
+
+    @Test
+    public void testStreamAttachmentSoapFault() throws Exception {
+        ewsService.init();
+
+        try {
+            ewsService.streamAttachment("asdf", "denied", new ByteArrayOutputStream());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("does not have permission to impersonate"));
+        }
+    }
+
+    @Test
+    public void testStreamAttachmentHttpError() throws Exception {
+        ewsService.init();
+
+        try {
+            ewsService.streamAttachment("asdf", "forbidden", new ByteArrayOutputStream());
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("403"));
+        }
+    }
+
     @Test
     public void testFetchUserSid() throws Exception {
 
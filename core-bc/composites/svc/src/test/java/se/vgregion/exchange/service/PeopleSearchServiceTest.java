@@ -0,0 +1,285 @@
+package se.vgregion.exchange.service;
+
+import com.microsoft.schemas.exchange.services._2006.types.EmailAddressType;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.ldap.core.ContextExecutor;
+import org.springframework.ldap.core.LdapOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.xml.ws.WebServiceException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PeopleSearchServiceTest {
+
+    private PeopleSearchService peopleSearchService;
+    private LdapContext ldapContext;
+    private EwsService ewsService;
+
+    @Before
+    public void setup() throws Exception {
+        ldapContext = mock(LdapContext.class);
+        ewsService = mock(EwsService.class);
+
+        LdapOperations ldapOperations = mock(LdapOperations.class);
+        when(ldapOperations.executeReadOnly(any(ContextExecutor.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return ((ContextExecutor) invocation.getArguments()[0]).executeWithContext(ldapContext);
+            }
+        });
+
+        when(ldapContext.search(eq(""), contains("(mail=*)"), any(SearchControls.class))).thenReturn(searchResults(
+                createSearchResult(1, "annsv1", "Anna Svensson", "anna.svensson@example.com"),
+                createSearchResult(2, "berka2", "Bertil Karlsson", "bertil.karlsson@example.com"),
+                createSearchResult(3, "anntu3", "Annika Tuvesson", "annika.tuvesson@example.com")));
+
+        peopleSearchService = new PeopleSearchService(ldapOperations, ewsService);
+        peopleSearchService.init();
+    }
+
+    private static SearchResult createSearchResult(int guid, String cn, String displayName, String mail) {
+        return createSearchResult(guid, cn, displayName, mail, null, "512");
+    }
+
+    private static SearchResult createSearchResult(int guid, String cn, String displayName, String mail,
+                                                   String hidden, String userAccountControl) {
+        BasicAttributes attributes = new BasicAttributes(true);
+        attributes.put("objectGUID", new byte[]{(byte) guid, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1});
+        attributes.put("cn", cn);
+        attributes.put("displayName", displayName);
+        attributes.put("userAccountControl", userAccountControl);
+
+        if (mail != null) {
+            attributes.put("mail", mail);
+        }
+
+        if (hidden != null) {
+            attributes.put("msExchHideFromAddressLists", hidden);
+        }
+
+        SearchResult searchResult = new SearchResult("cn=" + cn, null, attributes);
+        searchResult.setNameInNamespace("cn=" + cn + ",dc=example,dc=com");
+        return searchResult;
+    }
+
+    private static NamingEnumeration<SearchResult> searchResults(SearchResult... searchResults) {
+        final Iterator<SearchResult> iterator = Arrays.asList(searchResults).iterator();
+
+        return new NamingEnumeration<SearchResult>() {
+            @Override
+            public SearchResult next() {
+                return iterator.next();
+            }
+
+            @Override
+            public boolean hasMore() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public SearchResult nextElement() {
+                return iterator.next();
+            }
+        };
+    }
+
+    private static Control[] pagedResultsResponse(byte[] cookie) {
+        PagedResultsResponseControl control = mock(PagedResultsResponseControl.class);
+        when(control.getCookie()).thenReturn(cookie);
+        return new Control[]{control};
+    }
+
+    private static List<String> cns(List<Person> people) {
+        List<String> cns = new ArrayList<String>();
+        for (Person person : people) {
+            cns.add(person.getCn());
+        }
+        return cns;
+    }
+
+    @Test
+    public void testSearchByDisplayName() throws Exception {
+        List<Person> people = peopleSearchService.search("asdf", "ann", 10);
+
+        assertEquals(Arrays.asList("annsv1", "anntu3"), cns(people));
+    }
+
+    @Test
+    public void testSearchByLastNameIgnoringCase() throws Exception {
+        List<Person> people = peopleSearchService.search("asdf", "KARL", 10);
+
+        assertEquals(Arrays.asList("berka2"), cns(people));
+    }
+
+    @Test
+    public void testSearchByEmailAndCn() throws Exception {
+        assertEquals(Arrays.asList("anntu3"), cns(peopleSearchService.search("asdf", "annika.t", 10)));
+        assertEquals(Arrays.asList("berka2"), cns(peopleSearchService.search("asdf", "berka", 10)));
+    }
+
+    @Test
+    public void testSearchMaxResults() throws Exception {
+        List<Person> people = peopleSearchService.search("asdf", "a", 1);
+
+        assertEquals(1, people.size());
+        verify(ewsService, never()).resolveNames(anyString(), anyString());
+    }
+
+    @Test
+    public void testRebuildIndexWithSeveralPages() throws Exception {
+        when(ldapContext.search(eq(""), contains("(mail=*)"), any(SearchControls.class))).thenReturn(
+                searchResults(createSearchResult(1, "annsv1", "Anna Svensson", "anna.svensson@example.com")),
+                searchResults(createSearchResult(4, "cesjo4", "Cesar Johansson", "cesar.johansson@example.com")));
+        when(ldapContext.getResponseControls()).thenReturn(pagedResultsResponse(new byte[]{42}),
+                pagedResultsResponse(new byte[0]));
+
+        peopleSearchService.rebuildIndex();
+
+        // One search when the index was built in setup and one per page now
+        verify(ldapContext, times(3)).search(eq(""), contains("(mail=*)"), any(SearchControls.class));
+
+        assertEquals(Arrays.asList("annsv1"), cns(peopleSearchService.search("asdf", "anna", 10)));
+        assertEquals(Arrays.asList("cesjo4"), cns(peopleSearchService.search("asdf", "cesar", 10)));
+        assertTrue(peopleSearchService.search("asdf", "bertil", 10).isEmpty());
+    }
+
+    @Test
+    public void testRefreshIndex() throws Exception {
+        when(ldapContext.search(eq(""), contains("whenChanged>="), any(SearchControls.class))).thenReturn(
+                searchResults(createSearchResult(4, "cesjo4", "Cesar Johansson", "cesar.johansson@example.com")));
+
+        peopleSearchService.refreshIndex();
+
+        assertEquals(Arrays.asList("cesjo4"), cns(peopleSearchService.search("asdf", "cesar", 10)));
+        assertEquals(Arrays.asList("annsv1", "anntu3"), cns(peopleSearchService.search("asdf", "ann", 10)));
+    }
+
+    @Test
+    public void testRefreshIndexWithRenamedPerson() throws Exception {
+        when(ldapContext.search(eq(""), contains("whenChanged>="), any(SearchControls.class))).thenReturn(
+                searchResults(createSearchResult(2, "berni2", "Bertil Nilsson", "bertil.nilsson@example.com")));
+
+        peopleSearchService.refreshIndex();
+
+        assertEquals(Arrays.asList("berni2"), cns(peopleSearchService.search("asdf", "nils", 10)));
+        assertEquals(Arrays.asList("berni2"), cns(peopleSearchService.search("asdf", "bertil", 10)));
+        assertTrue(peopleSearchService.search("asdf", "karl", 10).isEmpty());
+        assertTrue(peopleSearchService.search("asdf", "berka", 10).isEmpty());
+    }
+
+    @Test
+    public void testRefreshIndexWithPersonWithoutMail() throws Exception {
+        when(ldapContext.search(eq(""), contains("whenChanged>="), any(SearchControls.class))).thenReturn(
+                searchResults(createSearchResult(3, "anntu3", "Annika Tuvesson", null)));
+
+        peopleSearchService.refreshIndex();
+
+        assertEquals(Arrays.asList("annsv1"), cns(peopleSearchService.search("asdf", "ann", 10)));
+    }
+
+    @Test
+    public void testRefreshIndexWithHiddenAndDisabledPeople() throws Exception {
+        when(ldapContext.search(eq(""), contains("whenChanged>="), any(SearchControls.class))).thenReturn(
+                searchResults(
+                        createSearchResult(1, "annsv1", "Anna Svensson", "anna.svensson@example.com", "TRUE", "512"),
+                        createSearchResult(3, "anntu3", "Annika Tuvesson", "annika.tuvesson@example.com", null,
+                                "514")));
+
+        peopleSearchService.refreshIndex();
+
+        assertTrue(peopleSearchService.search("asdf", "ann", 10).isEmpty());
+        assertEquals(Arrays.asList("berka2"), cns(peopleSearchService.search("asdf", "bertil", 10)));
+    }
+
+    @Test
+    public void testRefreshIndexWithoutModifications() throws Exception {
+        when(ldapContext.search(eq(""), contains("whenChanged>="), any(SearchControls.class))).thenReturn(
+                searchResults(
+                        createSearchResult(2, "berka2", "Bertil Karlsson", "bertil.karlsson@example.com"),
+                        createSearchResult(5, "dismi5", "Disabled Mirja", "mirja@example.com", null, "514")));
+
+        Object indexBefore = ReflectionTestUtils.getField(peopleSearchService, "index");
+
+        peopleSearchService.refreshIndex();
+
+        // Nothing indexed has changed so the index is kept as it is.
+        assertSame(indexBefore, ReflectionTestUtils.getField(peopleSearchService, "index"));
+    }
+
+    @Test
+    public void testSearchFallsBackToResolveNames() throws Exception {
+        EmailAddressType mailbox = new EmailAddressType();
+        mailbox.setName("Doris Extern");
+        mailbox.setEmailAddress("doris@example.org");
+
+        when(ewsService.resolveNames("asdf", "doris")).thenReturn(Arrays.asList(mailbox));
+
+        List<Person> people = peopleSearchService.search("asdf", "doris", 10);
+
+        assertEquals(1, people.size());
+        assertEquals("doris@example.org", people.get(0).getEmail());
+    }
+
+    @Test
+    public void testSearchWhenResolveNamesFails() throws Exception {
+        when(ewsService.resolveNames("asdf", "doris")).thenThrow(new WebServiceException("Impersonation failed"));
+
+        assertTrue(peopleSearchService.search("asdf", "doris", 10).isEmpty());
+    }
+
+    @Test
+    public void testSearchSkipsResolveNamesForExtendedUnresolvedPrefix() throws Exception {
+        assertTrue(peopleSearchService.search("asdf", "dor", 10).isEmpty());
+        assertTrue(peopleSearchService.search("asdf", "dori", 10).isEmpty());
+        assertTrue(peopleSearchService.search("asdf", "Doris", 10).isEmpty());
+
+        verify(ewsService, times(1)).resolveNames(anyString(), anyString());
+
+        assertTrue(peopleSearchService.search("asdf", "xyz", 10).isEmpty());
+        assertTrue(peopleSearchService.search("qwer", "doris", 10).isEmpty());
+
+        verify(ewsService, times(3)).resolveNames(anyString(), anyString());
+    }
+
+    @Test
+    public void testSearchShortPrefixDoesNotFallBack() throws Exception {
+        assertTrue(peopleSearchService.search("asdf", "x", 10).isEmpty());
+
+        verify(ewsService, never()).resolveNames(anyString(), anyString());
+    }
+}